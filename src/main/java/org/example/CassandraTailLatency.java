@@ -0,0 +1,283 @@
+package org.example;
+
+import com.datastax.oss.driver.api.core.ConsistencyLevel;
+import com.datastax.oss.driver.api.core.CqlIdentifier;
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.DriverException;
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import com.datastax.oss.driver.api.core.config.DefaultDriverOption;
+import com.datastax.oss.driver.api.core.config.DriverConfigLoader;
+import com.datastax.oss.driver.api.core.config.DriverExecutionProfile;
+import com.datastax.oss.driver.api.core.connection.ClosedConnectionException;
+import com.datastax.oss.driver.api.core.connection.HeartbeatException;
+import com.datastax.oss.driver.api.core.context.DriverContext;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.ExecutionInfo;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import com.datastax.oss.driver.api.core.metadata.Node;
+import com.datastax.oss.driver.api.core.retry.RetryDecision;
+import com.datastax.oss.driver.api.core.retry.RetryPolicy;
+import com.datastax.oss.driver.api.core.servererrors.CoordinatorException;
+import com.datastax.oss.driver.api.core.servererrors.OverloadedException;
+import com.datastax.oss.driver.api.core.servererrors.UnavailableException;
+import com.datastax.oss.driver.api.core.servererrors.WriteTimeoutException;
+import com.datastax.oss.driver.api.core.servererrors.WriteType;
+import com.datastax.oss.driver.api.core.session.Request;
+import com.datastax.oss.driver.api.core.specex.SpeculativeExecutionPolicy;
+import io.prometheus.client.Counter;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Tail-latency controls shared by the async Cassandra benchmarks (-Dtail=true):
+// speculative execution for idempotent inserts, plus retries capped by a retry budget.
+// Every extra request (retry or speculative copy) is paid for from the same budget.
+public class CassandraTailLatency {
+
+    // Max executions per request, counting the initial one: 2 = at most one speculative copy.
+    // The driver only speculates on idempotent statements.
+    private static final int SPECULATIVE_EXECUTION_MAX = 2;
+
+    private static final String LOCAL_DATACENTER = "datacenter1";
+
+    // Attempts per message, including the first one
+    private static final int MAX_ATTEMPTS = 3;
+
+    // Tail controls: speculative executions, retries and give-ups
+    static final Counter tailEventsTotal = Counter.build()
+            .name("cassandra_tail_events_total")
+            .help("Speculative executions, retries and give-ups in tail mode.")
+            .labelNames("event")
+            .register();
+
+    // The driver creates the speculative policy by reflection, so it can't be handed the
+    // budget directly. Only one tail session exists at a time in these benchmarks.
+    private static volatile RetryBudget speculativeBudget;
+
+    // With a single node the driver still fires the speculative timer and counts it as a
+    // speculative execution, then finds the query plan empty and sends nothing. Those phantom
+    // copies would be reported and charged, so speculation is off unless there is a second node.
+    private static volatile boolean speculationAllowed = false;
+
+    // Counters reported at the end of a tail-mode run (mirrored to tailEventsTotal)
+    static class TailStats {
+        final AtomicLong speculativeFires = new AtomicLong(0);
+        final AtomicLong retries = new AtomicLong(0);
+        final AtomicLong giveUps = new AtomicLong(0);
+
+        void speculative(int count) {
+            if (count > 0) {
+                speculativeFires.addAndGet(count);
+                tailEventsTotal.labels("speculative").inc(count);
+            }
+        }
+
+        void retry() {
+            retries.incrementAndGet();
+            tailEventsTotal.labels("retry").inc();
+        }
+
+        void giveUp() {
+            giveUps.incrementAndGet();
+            tailEventsTotal.labels("give_up").inc();
+        }
+    }
+
+    // Token bucket: every success deposits a fraction of a token, every extra request spends one.
+    // With 0.1 tokens per success, retries plus speculative copies stay around 10% of successful
+    // traffic, so a struggling cluster doesn't get hit with a retry storm on top of its load.
+    static class RetryBudget {
+        private final double maxTokens;
+        private final double tokensPerSuccess;
+        private double tokens;
+
+        RetryBudget(double maxTokens, double tokensPerSuccess) {
+            this.maxTokens = maxTokens;
+            this.tokensPerSuccess = tokensPerSuccess;
+            this.tokens = maxTokens;
+        }
+
+        synchronized void onSuccess() {
+            tokens = Math.min(maxTokens, tokens + tokensPerSuccess);
+        }
+
+        synchronized boolean tryAcquire() {
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean hasTokens() {
+            return tokens >= 1;
+        }
+
+        // Speculative copies are only known after the fact, so they may put the bucket in debt;
+        // no retry or new speculation happens until successes have paid it back.
+        synchronized void charge(int count) {
+            tokens -= count;
+        }
+    }
+
+    // Only executeWithRetry retries, so every retry goes through the budget. The driver's
+    // DefaultRetryPolicy would otherwise retry idempotent statements on its own.
+    @SuppressWarnings("deprecation")
+    public static class RethrowRetryPolicy implements RetryPolicy {
+
+        public RethrowRetryPolicy(DriverContext context, String profileName) {
+        }
+
+        @Override
+        public RetryDecision onReadTimeout(Request request, ConsistencyLevel cl, int blockFor, int received,
+                boolean dataPresent, int retryCount) {
+            return RetryDecision.RETHROW;
+        }
+
+        @Override
+        public RetryDecision onWriteTimeout(Request request, ConsistencyLevel cl, WriteType writeType, int blockFor,
+                int received, int retryCount) {
+            return RetryDecision.RETHROW;
+        }
+
+        @Override
+        public RetryDecision onUnavailable(Request request, ConsistencyLevel cl, int required, int alive,
+                int retryCount) {
+            return RetryDecision.RETHROW;
+        }
+
+        @Override
+        public RetryDecision onRequestAborted(Request request, Throwable error, int retryCount) {
+            return RetryDecision.RETHROW;
+        }
+
+        @Override
+        public RetryDecision onErrorResponse(Request request, CoordinatorException error, int retryCount) {
+            return RetryDecision.RETHROW;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Constant-delay speculation that stops scheduling copies while the retry budget is empty
+    public static class BudgetedSpeculativeExecutionPolicy implements SpeculativeExecutionPolicy {
+        private final int maxExecutions;
+        private final long delayMillis;
+
+        public BudgetedSpeculativeExecutionPolicy(DriverContext context, String profileName) {
+            DriverExecutionProfile profile = context.getConfig().getProfile(profileName);
+            this.maxExecutions = profile.getInt(DefaultDriverOption.SPECULATIVE_EXECUTION_MAX);
+            // Round up, at least 1 ms: a sub-millisecond p99 must not become "speculate immediately"
+            long delayNanos = profile.getDuration(DefaultDriverOption.SPECULATIVE_EXECUTION_DELAY).toNanos();
+            this.delayMillis = Math.max(1, (delayNanos + 999_999) / 1_000_000);
+        }
+
+        @Override
+        public long nextExecution(Node node, CqlIdentifier keyspace, Request request, int runningExecutions) {
+            RetryBudget budget = speculativeBudget;
+            if (!speculationAllowed || runningExecutions >= maxExecutions || budget == null || !budget.hasTokens()) {
+                return -1;
+            }
+            return delayMillis;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Session for tail mode: speculation after the given delay (use the p99), gated by the
+    // budget and by having a second local node, and no driver-side retries
+    static CqlSession openTailSession(Duration delay, RetryBudget budget) {
+        speculativeBudget = budget;
+        DriverConfigLoader config = DriverConfigLoader.programmaticBuilder()
+                .withClass(DefaultDriverOption.SPECULATIVE_EXECUTION_POLICY_CLASS, BudgetedSpeculativeExecutionPolicy.class)
+                .withInt(DefaultDriverOption.SPECULATIVE_EXECUTION_MAX, SPECULATIVE_EXECUTION_MAX)
+                .withDuration(DefaultDriverOption.SPECULATIVE_EXECUTION_DELAY, delay)
+                .withClass(DefaultDriverOption.RETRY_POLICY_CLASS, RethrowRetryPolicy.class)
+                .build();
+
+        CqlSession session = CqlSession.builder()
+                .addContactPoint(new InetSocketAddress("localhost", 9042))
+                .withLocalDatacenter(LOCAL_DATACENTER)
+                .withConfigLoader(config)
+                .build();
+
+        long localNodes = session.getMetadata().getNodes().values().stream()
+                .filter(node -> LOCAL_DATACENTER.equals(node.getDatacenter()))
+                .count();
+        speculationAllowed = localNodes >= 2;
+        if (!speculationAllowed) {
+            System.out.println("⚠️  Only " + localNodes + " node(s) in " + LOCAL_DATACENTER
+                    + ": speculative execution disabled, retries still budgeted");
+        }
+        return session;
+    }
+
+    // Executes an idempotent statement, retrying failures while the budget allows.
+    // The returned stage completes once: with the first success or the final failure.
+    static CompletionStage<AsyncResultSet> executeWithRetry(
+            CqlSession session, Statement<?> statement, RetryBudget budget, TailStats stats) {
+        CompletableFuture<AsyncResultSet> outcome = new CompletableFuture<>();
+        attempt(session, statement.setIdempotent(true), budget, stats, 1, outcome);
+        return outcome;
+    }
+
+    private static void attempt(CqlSession session, Statement<?> statement, RetryBudget budget, TailStats stats,
+            int attemptNumber, CompletableFuture<AsyncResultSet> outcome) {
+        session.executeAsync(statement).whenComplete((result, error) -> {
+            if (error == null) {
+                chargeSpeculative(result.getExecutionInfo(), budget, stats);
+                budget.onSuccess();
+                outcome.complete(result);
+                return;
+            }
+
+            Throwable cause = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause()
+                    : error;
+            if (cause instanceof DriverException) {
+                chargeSpeculative(((DriverException) cause).getExecutionInfo(), budget, stats);
+            }
+
+            // Only transient errors are worth another attempt; the rest fail fast without spending budget
+            if (isTransient(cause) && attemptNumber < MAX_ATTEMPTS && budget.tryAcquire()) {
+                stats.retry();
+                attempt(session, statement, budget, stats, attemptNumber + 1, outcome);
+            } else {
+                stats.giveUp();
+                outcome.completeExceptionally(cause);
+            }
+        });
+    }
+
+    private static boolean isTransient(Throwable error) {
+        return error instanceof DriverTimeoutException
+                || error instanceof WriteTimeoutException
+                || error instanceof UnavailableException
+                || error instanceof OverloadedException
+                || error instanceof HeartbeatException
+                || error instanceof ClosedConnectionException;
+    }
+
+    private static void chargeSpeculative(ExecutionInfo info, RetryBudget budget, TailStats stats) {
+        if (info != null && info.getSpeculativeExecutionCount() > 0) {
+            budget.charge(info.getSpeculativeExecutionCount());
+            stats.speculative(info.getSpeculativeExecutionCount());
+        }
+    }
+
+    // Percentile (0..1) of the recorded latencies, in nanoseconds
+    static long percentileNanos(long[] latenciesNanos, double percentile) {
+        long[] sorted = latenciesNanos.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,390 @@
+package org.example;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import io.vertx.pgclient.PgPool;
+import io.vertx.sqlclient.Tuple;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Demand-driven write pipeline: Publisher -> batching Processor -> database Subscriber.
+// Nothing blocks on a Semaphore: each stage only produces what the next one asked for
+// with request(n), so memory stays bounded by the sink's capacity.
+public class FlowPipeline {
+
+    static class Message {
+        final UUID id;
+        final String content;
+        final long timestamp;
+
+        Message(UUID id, String content, long timestamp) {
+            this.id = id; this.content = content; this.timestamp = timestamp;
+        }
+    }
+
+    // Source: generates messages only when asked. Stands in for an HTTP handler or a
+    // Kafka-like feed. Emission runs on the given executor, never on driver I/O threads.
+    static class MessagePublisher implements Flow.Publisher<Message> {
+        private final long totalMessages;
+        private final Executor executor;
+
+        MessagePublisher(long totalMessages, Executor executor) {
+            this.totalMessages = totalMessages;
+            this.executor = executor;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super Message> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                private final AtomicLong demand = new AtomicLong(0);
+                private final AtomicInteger wip = new AtomicInteger(0);
+                private long emitted = 0;
+                private volatile boolean cancelled = false;
+                private volatile Throwable pendingError;
+
+                @Override
+                public void request(long n) {
+                    if (n <= 0) {
+                        // Signalled from drain, so onError never overlaps an onNext (rule 1.3)
+                        pendingError = new IllegalArgumentException("request(n) needs n > 0, got " + n);
+                    } else {
+                        demand.getAndAccumulate(n, (current, added) -> {
+                            long sum = current + added;
+                            return sum < 0 ? Long.MAX_VALUE : sum; // cap on overflow
+                        });
+                    }
+                    if (wip.getAndIncrement() == 0) {
+                        executor.execute(this::drain);
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled = true;
+                }
+
+                // Only one drain runs at a time; requests arriving meanwhile bump wip and loop again.
+                // After a terminal signal wip is left above zero, so no drain is scheduled again.
+                private void drain() {
+                    int missed = 1;
+                    do {
+                        Throwable error = pendingError;
+                        if (error != null && !cancelled) {
+                            cancelled = true;
+                            subscriber.onError(error);
+                            return;
+                        }
+
+                        long requested = demand.get();
+                        long sent = 0;
+                        while (sent < requested && emitted < totalMessages && !cancelled) {
+                            subscriber.onNext(new Message(UUID.randomUUID(), "Payload", System.currentTimeMillis()));
+                            emitted++;
+                            sent++;
+                        }
+                        demand.addAndGet(-sent);
+
+                        if (emitted == totalMessages && !cancelled) {
+                            cancelled = true;
+                            subscriber.onComplete();
+                            return;
+                        }
+                        missed = wip.addAndGet(-missed);
+                    } while (missed != 0);
+                }
+            });
+        }
+    }
+
+    // Groups messages into batches. Upstream demand is a couple of batches ahead of what
+    // downstream has consumed, so at most (prefetch * batchSize) messages sit in the buffer.
+    static class BatchingProcessor implements Flow.Processor<Message, List<Message>> {
+        private static final int PREFETCH_BATCHES = 2;
+
+        private final int batchSize;
+        private final AtomicInteger wip = new AtomicInteger(0);
+
+        // Guarded by "this"
+        private final List<Message> buffer;
+        private long downstreamDemand = 0;
+        private boolean upstreamDone = false;
+        private Throwable upstreamError;
+        private Throwable downstreamError;
+        private boolean terminated = false;
+
+        private volatile Flow.Subscription upstream;
+        private volatile Flow.Subscriber<? super List<Message>> downstream;
+
+        BatchingProcessor(int batchSize) {
+            this.batchSize = batchSize;
+            this.buffer = new ArrayList<>(batchSize);
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super List<Message>> subscriber) {
+            downstream = subscriber;
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    if (n <= 0) {
+                        // Stop the source, and let drain signal the error so it never overlaps an onNext
+                        synchronized (BatchingProcessor.this) {
+                            if (downstreamError == null) {
+                                downstreamError = new IllegalArgumentException("request(n) needs n > 0, got " + n);
+                            }
+                        }
+                        if (upstream != null) {
+                            upstream.cancel();
+                        }
+                    } else {
+                        synchronized (BatchingProcessor.this) {
+                            long sum = downstreamDemand + n;
+                            downstreamDemand = sum < 0 ? Long.MAX_VALUE : sum; // cap on overflow
+                        }
+                    }
+                    drain();
+                }
+
+                @Override
+                public void cancel() {
+                    synchronized (BatchingProcessor.this) {
+                        terminated = true;
+                    }
+                    if (upstream != null) {
+                        upstream.cancel();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            upstream = subscription;
+            subscription.request((long) batchSize * PREFETCH_BATCHES);
+        }
+
+        @Override
+        public void onNext(Message item) {
+            synchronized (this) {
+                buffer.add(item);
+            }
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            synchronized (this) {
+                upstreamDone = true;
+                upstreamError = throwable;
+            }
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            synchronized (this) {
+                upstreamDone = true;
+            }
+            drain();
+        }
+
+        // Emits full batches while downstream has demand; the last partial batch goes out
+        // once upstream completes. Every emitted batch frees room for one more upstream.
+        private void drain() {
+            if (downstream == null) {
+                return; // items stay buffered until downstream subscribes and requests
+            }
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                while (true) {
+                    List<Message> batch = null;
+                    boolean complete = false;
+                    Throwable error = null;
+
+                    synchronized (this) {
+                        if (terminated) {
+                            break;
+                        }
+                        boolean ready = buffer.size() >= batchSize || (upstreamDone && !buffer.isEmpty());
+                        if (downstreamError != null) {
+                            terminated = true;
+                            complete = true;
+                            error = downstreamError;
+                        } else if (ready && downstreamDemand > 0) {
+                            batch = new ArrayList<>(buffer.subList(0, Math.min(batchSize, buffer.size())));
+                            buffer.subList(0, batch.size()).clear();
+                            downstreamDemand--;
+                        } else if (upstreamDone && buffer.isEmpty()) {
+                            terminated = true;
+                            complete = true;
+                            error = upstreamError;
+                        }
+                    }
+
+                    if (batch != null) {
+                        downstream.onNext(batch);
+                        upstream.request(batch.size());
+                    } else if (complete) {
+                        if (error != null) {
+                            downstream.onError(error);
+                        } else {
+                            downstream.onComplete();
+                        }
+                        break;
+                    } else {
+                        break;
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+
+    // Sink: writes batches asynchronously and asks for the next batch only when one finishes,
+    // so the number of batches in flight never exceeds maxInFlightBatches.
+    abstract static class BatchWriter implements Flow.Subscriber<List<Message>> {
+        private final int maxInFlightBatches;
+        private final AtomicInteger inflightBatches = new AtomicInteger(0);
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private volatile boolean upstreamDone = false;
+        private volatile Flow.Subscription subscription;
+
+        final AtomicLong writesCompleted = new AtomicLong(0);
+        final AtomicLong writeErrors = new AtomicLong(0);
+
+        BatchWriter(int maxInFlightBatches) {
+            this.maxInFlightBatches = maxInFlightBatches;
+        }
+
+        // One async write of the whole batch. The stage completes once every row has an outcome,
+        // with the number of rows written; a failed stage means none of the batch was written.
+        abstract CompletionStage<Integer> write(List<Message> batch);
+
+        // Metrics hook, called once per finished batch
+        interface BatchListener {
+            void onBatchWritten(List<Message> batch, int writtenRows, long durationNanos);
+        }
+
+        volatile BatchListener batchListener = (batch, writtenRows, durationNanos) -> { };
+
+        CompletableFuture<Void> completion() {
+            return done;
+        }
+
+        int inflightBatches() {
+            return inflightBatches.get();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(maxInFlightBatches);
+        }
+
+        @Override
+        public void onNext(List<Message> batch) {
+            inflightBatches.incrementAndGet();
+            long startTime = System.nanoTime();
+
+            write(batch).whenComplete((written, error) -> {
+                int writtenRows = error == null ? written : 0;
+                if (error != null) {
+                    System.err.println("❌ Batch write failed: " + error.getMessage());
+                }
+                writesCompleted.addAndGet(writtenRows);
+                writeErrors.addAndGet(batch.size() - writtenRows);
+                batchListener.onBatchWritten(batch, writtenRows, System.nanoTime() - startTime);
+
+                // Capacity freed: ask for exactly one more batch
+                if (inflightBatches.decrementAndGet() == 0 && upstreamDone) {
+                    done.complete(null);
+                } else {
+                    subscription.request(1);
+                }
+            });
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            done.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            upstreamDone = true;
+            if (inflightBatches.get() == 0) {
+                done.complete(null);
+            }
+        }
+    }
+
+    // Cassandra sink: one executeAsync per row (rows of a batch live on different partitions,
+    // so a CQL BATCH would only add coordinator work); the batch is done when all rows are,
+    // and each row succeeds or fails on its own.
+    static class CassandraBatchWriter extends BatchWriter {
+        private final CqlSession session;
+        private final PreparedStatement ps;
+
+        CassandraBatchWriter(CqlSession session, PreparedStatement ps, int maxInFlightBatches) {
+            super(maxInFlightBatches);
+            this.session = session;
+            this.ps = ps;
+        }
+
+        @Override
+        CompletionStage<Integer> write(List<Message> batch) {
+            AtomicInteger written = new AtomicInteger(0);
+            CompletableFuture<?>[] rows = new CompletableFuture<?>[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                Message msg = batch.get(i);
+                rows[i] = session.executeAsync(ps.bind(msg.id, msg.content, msg.timestamp))
+                        .handle((result, error) -> {
+                            if (error == null) {
+                                written.incrementAndGet();
+                            } else {
+                                System.err.println("❌ Write failed: " + error.getMessage());
+                            }
+                            return null;
+                        })
+                        .toCompletableFuture();
+            }
+            // handle() never fails, so allOf completes normally once every row has an outcome
+            return CompletableFuture.allOf(rows).thenApply(ignored -> written.get());
+        }
+    }
+
+    // Postgres sink: the whole batch goes out as one pipelined executeBatch on the PgPool.
+    // The batch shares one implicit transaction, so it is written or rejected as a whole.
+    static class PostgresBatchWriter extends BatchWriter {
+        private static final String INSERT_QUERY = "INSERT INTO messages (id, content, timestamp) VALUES ($1, $2, $3)";
+
+        private final PgPool client;
+
+        PostgresBatchWriter(PgPool client, int maxInFlightBatches) {
+            super(maxInFlightBatches);
+            this.client = client;
+        }
+
+        @Override
+        CompletionStage<Integer> write(List<Message> batch) {
+            List<Tuple> params = new ArrayList<>(batch.size());
+            for (Message msg : batch) {
+                params.add(Tuple.of(msg.id, msg.content, msg.timestamp));
+            }
+            return client.preparedQuery(INSERT_QUERY)
+                    .executeBatch(params)
+                    .map(rows -> batch.size())
+                    .toCompletionStage();
+        }
+    }
+}
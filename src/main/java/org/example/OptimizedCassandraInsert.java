@@ -2,8 +2,10 @@ package org.example;
 
 import com.datastax.oss.driver.api.core.CqlSession;
 import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
 import com.datastax.oss.driver.api.core.cql.PreparedStatement;
 import java.net.InetSocketAddress;
+import java.time.Duration;
 import java.util.UUID;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.CountDownLatch;
@@ -16,6 +18,12 @@ public class OptimizedCassandraInsert {
     // or overwhelming the Docker container. 1024 is a healthy "Staff" default.
     private static final int MAX_IN_FLIGHT = 1024;
 
+    // -Dtail=true: idempotent inserts with speculative execution + budgeted retries
+    private static final boolean TAIL_MODE = Boolean.getBoolean("tail");
+    // The p99 comes from steady state: warm-up writes are thrown away, then a larger sample is timed
+    private static final int WARMUP_MESSAGES = 10000;
+    private static final int P99_SAMPLE_MESSAGES = 50000;
+
     public static void main(String[] args) {
 
         try (CqlSession session = CqlSession.builder()
@@ -31,51 +39,111 @@ public class OptimizedCassandraInsert {
 
             PreparedStatement ps = session.prepare("INSERT INTO whatsapp.messages (id, content, timestamp) VALUES (?, ?, ?)");
 
-            int totalMessages = 20000; // Increased to 20k to see the speed difference
-            CountDownLatch allDone = new CountDownLatch(totalMessages);
-            Semaphore inflightLimiter = new Semaphore(MAX_IN_FLIGHT);
-            AtomicInteger errorCount = new AtomicInteger(0);
-
-            System.out.println("🚀 Starting Async Cassandra Insertion (" + totalMessages + " rows)...");
-            long startTime = System.currentTimeMillis();
-
-            for (int i = 0; i < totalMessages; i++) {
-                // Block if we have too many requests pending (Backpressure)
-                inflightLimiter.acquire();
-
-                // 2. Fire Async (Non-Blocking)
-                CompletionStage<AsyncResultSet> future = session.executeAsync(ps.bind(
-                        UUID.randomUUID(),
-                        "Async High Throughput Payload",
-                        System.currentTimeMillis()
-                ));
-
-                // 3. Handle Completion (Callback)
-                future.whenComplete((result, error) -> {
-                    inflightLimiter.release(); // Allow new request
-                    allDone.countDown();       // Decrement pending count
-
-                    if (error != null) {
-                        errorCount.incrementAndGet();
-                        // In real life, log this error or retry
-                    }
-                });
+            if (!TAIL_MODE) {
+                insert(session, ps, null, null);
+                return;
             }
 
-            // 4. Wait for the last async callback to finish
-            allDone.await();
+            // Tail mode speculates after the steady-state p99 of plain writes on this session
+            Duration speculativeDelay = measureP99(session, ps);
+            System.out.printf("🎯 Tail mode: speculative execution after %.2f ms (steady-state p99)%n",
+                    speculativeDelay.toNanos() / 1_000_000.0);
 
-            long endTime = System.currentTimeMillis();
-            double seconds = (endTime - startTime) / 1000.0;
+            CassandraTailLatency.RetryBudget budget = new CassandraTailLatency.RetryBudget(100, 0.1);
+            try (CqlSession tailSession = CassandraTailLatency.openTailSession(speculativeDelay, budget)) {
 
-            System.out.println("------------------------------------------------");
-            System.out.printf("⚡ Optimized Result: %d messages took %.2f seconds.\n", totalMessages, seconds);
-            System.out.printf("📈 Throughput: %.2f msg/sec\n", totalMessages / seconds);
-            System.out.println("Errors: " + errorCount.get());
-            System.out.println("------------------------------------------------");
+                PreparedStatement tailPs = tailSession.prepare("INSERT INTO whatsapp.messages (id, content, timestamp) VALUES (?, ?, ?)");
+                insert(tailSession, tailPs, budget, new CassandraTailLatency.TailStats());
+            }
 
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    // Without a budget: plain executeAsync. With one: idempotent inserts with budgeted retries.
+    private static void insert(CqlSession session, PreparedStatement ps, CassandraTailLatency.RetryBudget budget,
+            CassandraTailLatency.TailStats stats) throws InterruptedException {
+
+        int totalMessages = 20000; // Increased to 20k to see the speed difference
+        CountDownLatch allDone = new CountDownLatch(totalMessages);
+        Semaphore inflightLimiter = new Semaphore(MAX_IN_FLIGHT);
+        AtomicInteger errorCount = new AtomicInteger(0);
+
+        System.out.println("🚀 Starting Async Cassandra Insertion (" + totalMessages + " rows)...");
+        long startTime = System.currentTimeMillis();
+
+        for (int i = 0; i < totalMessages; i++) {
+            // Block if we have too many requests pending (Backpressure)
+            inflightLimiter.acquire();
+
+            // 2. Fire Async (Non-Blocking)
+            BoundStatement statement = ps.bind(
+                    UUID.randomUUID(),
+                    "Async High Throughput Payload",
+                    System.currentTimeMillis()
+            );
+            CompletionStage<AsyncResultSet> future = budget == null
+                    ? session.executeAsync(statement)
+                    : CassandraTailLatency.executeWithRetry(session, statement, budget, stats);
+
+            // 3. Handle Completion (Callback)
+            future.whenComplete((result, error) -> {
+                inflightLimiter.release(); // Allow new request
+                allDone.countDown();       // Decrement pending count
+
+                if (error != null) {
+                    errorCount.incrementAndGet();
+                    // In tail mode this is a give-up: retries already ran out of budget or attempts
+                }
+            });
+        }
+
+        // 4. Wait for the last async callback to finish
+        allDone.await();
+
+        long endTime = System.currentTimeMillis();
+        double seconds = (endTime - startTime) / 1000.0;
+
+        System.out.println("------------------------------------------------");
+        System.out.printf("⚡ Optimized Result: %d messages took %.2f seconds.\n", totalMessages, seconds);
+        System.out.printf("📈 Throughput: %.2f msg/sec\n", totalMessages / seconds);
+        System.out.println("Errors: " + errorCount.get());
+        if (budget != null) {
+            System.out.println("Speculative executions: " + stats.speculativeFires.get());
+            System.out.println("Retries: " + stats.retries.get());
+            System.out.println("Gave up: " + stats.giveUps.get());
+        }
+        System.out.println("------------------------------------------------");
+    }
+
+    // Plain async writes on the given session: a thrown-away warm-up (connections, JIT), then a
+    // timed sample whose p99 becomes the speculative delay
+    private static Duration measureP99(CqlSession session, PreparedStatement ps) throws InterruptedException {
+        timedWrites(session, ps, WARMUP_MESSAGES);
+        long[] latencies = timedWrites(session, ps, P99_SAMPLE_MESSAGES);
+        return Duration.ofNanos(CassandraTailLatency.percentileNanos(latencies, 0.99));
+    }
+
+    private static long[] timedWrites(CqlSession session, PreparedStatement ps, int count) throws InterruptedException {
+        long[] latencies = new long[count];
+        CountDownLatch allDone = new CountDownLatch(count);
+        Semaphore inflightLimiter = new Semaphore(MAX_IN_FLIGHT);
+
+        for (int i = 0; i < count; i++) {
+            inflightLimiter.acquire();
+            long requestStartTime = System.nanoTime();
+            int index = i;
+
+            session.executeAsync(ps.bind(UUID.randomUUID(), "Warm-up Payload", System.currentTimeMillis()))
+                    .whenComplete((result, error) -> {
+                        latencies[index] = System.nanoTime() - requestStartTime;
+                        inflightLimiter.release();
+                        allDone.countDown();
+                    });
+        }
+
+        allDone.await();
+        return latencies;
+    }
 }
@@ -2,12 +2,15 @@ package org.example;
 
 import com.datastax.oss.driver.api.core.CqlSession;
 import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
 import com.datastax.oss.driver.api.core.cql.PreparedStatement;
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
 import io.prometheus.client.Histogram;
 import io.prometheus.client.exporter.HTTPServer;
 import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.UUID;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.CountDownLatch;
@@ -24,12 +27,14 @@ public class OptimizedCassandraMetrics {
     static final Counter writesTotal = Counter.build()
             .name("cassandra_writes_total")
             .help("Total writes to Cassandra.")
+            .labelNames("mode")
             .register();
 
     // 2. Latency: How long each async write takes (from send to callback)
     static final Histogram writeLatency = Histogram.build()
             .name("cassandra_write_latency_seconds")
             .help("Time taken for Cassandra to ack the write.")
+            .labelNames("mode")
             .buckets(0.001, 0.002, 0.004, 0.010, 0.025, 0.050, 0.100) // Buckets: 0.5ms, 1ms, 5ms...
             .register();
 
@@ -39,8 +44,18 @@ public class OptimizedCassandraMetrics {
             .help("Number of async requests currently waiting for a response.")
             .register();
 
+    // 4. Tail controls (-Dtail=true): see CassandraTailLatency.tailEventsTotal
+
     private static final int MAX_IN_FLIGHT = 1024;
 
+    // Compare speculative execution + retry budget against plain writes on p99/p99.9
+    private static final boolean TAIL_MODE = Boolean.getBoolean("tail");
+
+    // Tail mode: warm-up passes are thrown away, then baseline and tail rounds run as
+    // B, T, T, B so both modes see the same JVM warmth and the same average table size.
+    private static final int WARMUP_MESSAGES = 100000;
+    private static final int ROUND_MESSAGES = 250000;
+
     public static void main(String[] args) {
         try {
             // Start the Metrics Server (Prometheus scrapes this)
@@ -61,96 +76,175 @@ public class OptimizedCassandraMetrics {
                 PreparedStatement ps = session
                         .prepare("INSERT INTO whatsapp.messages (id, content, timestamp) VALUES (?, ?, ?)");
 
-                // Increase loop to 100k so you have time to watch the graphs
-                int totalMessages = 1000000;
-                CountDownLatch allDone = new CountDownLatch(totalMessages);
-                Semaphore inflightLimiter = new Semaphore(MAX_IN_FLIGHT);
+                if (!TAIL_MODE) {
+                    // Increase loop to 100k so you have time to watch the graphs
+                    runLoadTest(session, ps, 1000000, "baseline", null, null);
+                } else {
+                    runTailComparison(session, ps);
+                }
 
-                System.out.println("🚀 Starting Async Load Test...");
-                System.out.println("━".repeat(80));
+                // Keep server alive so you can still read the final metrics
+                System.out.println("🔄 Keeping metrics server alive for 60 seconds...");
+                Thread.sleep(60000);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-                // Track total processing time
-                long startTime = System.nanoTime();
-                final int[] processedCount = { 0 };
+    private static void runTailComparison(CqlSession session, PreparedStatement ps) throws InterruptedException {
+        runLoadTest(session, ps, WARMUP_MESSAGES, "warmup", null, null);
 
-                for (int i = 0; i < totalMessages; i++) {
-                    inflightLimiter.acquire();
+        // Speculate once a write is slower than the steady-state baseline p99
+        long[] baselineA = runLoadTest(session, ps, ROUND_MESSAGES, "baseline", null, null);
+        long p99Nanos = CassandraTailLatency.percentileNanos(baselineA, 0.99);
+        System.out.printf("🎯 Tail mode: speculative execution after %.2f ms (baseline p99)%n",
+                p99Nanos / 1_000_000.0);
 
-                    // Increment Gauge: We are sending a request out
-                    inflightRequests.inc();
+        CassandraTailLatency.RetryBudget budget = new CassandraTailLatency.RetryBudget(100, 0.1);
+        CassandraTailLatency.TailStats stats = new CassandraTailLatency.TailStats();
 
-                    Histogram.Timer timer = writeLatency.startTimer();
+        try (CqlSession tailSession = CassandraTailLatency.openTailSession(Duration.ofNanos(p99Nanos), budget)) {
 
-                    CompletionStage<AsyncResultSet> future = session.executeAsync(ps.bind(
-                            UUID.randomUUID(), "Payload", System.currentTimeMillis()));
+            PreparedStatement tailPs = tailSession
+                    .prepare("INSERT INTO whatsapp.messages (id, content, timestamp) VALUES (?, ?, ?)");
 
-                    future.whenComplete((result, error) -> {
-                        // Stop Timer & Decrement Gauge
-                        double durationSeconds = timer.observeDuration();
-                        long durationNanos = (long) (durationSeconds * 1_000_000_000);
-                        totalLatencyNanos.addAndGet(durationNanos);
+            // The new session needs its own warm-up; it is left out of the printed comparison
+            runLoadTest(tailSession, tailPs, WARMUP_MESSAGES, "warmup", budget, new CassandraTailLatency.TailStats());
 
-                        inflightRequests.dec();
-                        writesTotal.inc();
+            long[] tailA = runLoadTest(tailSession, tailPs, ROUND_MESSAGES, "tail", budget, stats);
+            long[] tailB = runLoadTest(tailSession, tailPs, ROUND_MESSAGES, "tail", budget, stats);
+            long[] baselineB = runLoadTest(session, ps, ROUND_MESSAGES, "baseline", null, null);
 
-                        inflightLimiter.release();
-                        allDone.countDown();
+            printTailComparison(concat(baselineA, baselineB), concat(tailA, tailB), stats);
+        }
+    }
 
-                        synchronized (processedCount) {
-                            processedCount[0]++;
+    // Runs one load test and returns the latency of every write (nanoseconds).
+    // With a retry budget the statements are marked idempotent and failures are retried.
+    private static long[] runLoadTest(CqlSession session, PreparedStatement ps, int totalMessages, String mode,
+            CassandraTailLatency.RetryBudget budget, CassandraTailLatency.TailStats stats) throws InterruptedException {
+        totalLatencyNanos.set(0);
+        AtomicLong completed = new AtomicLong(0);
+        AtomicLong failed = new AtomicLong(0);
+        long[] latencies = new long[totalMessages];
+        CountDownLatch allDone = new CountDownLatch(totalMessages);
+        Semaphore inflightLimiter = new Semaphore(MAX_IN_FLIGHT);
+
+        System.out.println("🚀 Starting Async Load Test (" + mode + ")...");
+        System.out.println("━".repeat(80));
+
+        // Track total processing time
+        long startTime = System.nanoTime();
+        final int[] processedCount = { 0 };
+
+        for (int i = 0; i < totalMessages; i++) {
+            inflightLimiter.acquire();
+
+            // Increment Gauge: We are sending a request out
+            inflightRequests.inc();
+
+            Histogram.Timer timer = writeLatency.labels(mode).startTimer();
+            long requestStartTime = System.nanoTime();
+            int index = i;
+
+            BoundStatement statement = ps.bind(UUID.randomUUID(), "Payload", System.currentTimeMillis());
+            CompletionStage<AsyncResultSet> future = budget == null
+                    ? session.executeAsync(statement)
+                    : CassandraTailLatency.executeWithRetry(session, statement, budget, stats);
+
+            future.whenComplete((result, error) -> {
+                // Stop Timer & Decrement Gauge
+                timer.observeDuration();
+                long durationNanos = System.nanoTime() - requestStartTime;
+                latencies[index] = durationNanos;
+                totalLatencyNanos.addAndGet(durationNanos);
+
+                inflightRequests.dec();
+                writesTotal.labels(mode).inc();
+                completed.incrementAndGet();
+                if (error != null) {
+                    failed.incrementAndGet();
+                }
 
-                            // Log progress every 10,000 messages
-                            if (processedCount[0] % 10000 == 0) {
-                                long currentTime = System.nanoTime();
-                                long elapsedMs = (currentTime - startTime) / 1_000_000;
-                                double avgLatencyMs = (totalLatencyNanos.get() / (double) processedCount[0])
-                                        / 1_000_000;
-                                double requestsPerSecond = (processedCount[0] * 1000.0) / elapsedMs;
+                inflightLimiter.release();
+                allDone.countDown();
 
-                                System.out.printf(
-                                        "📈 Progress: %,d/%,d messages | Elapsed: %,d ms | Avg Latency: %.2f ms | Throughput: %.2f req/s%n",
-                                        processedCount[0], totalMessages, elapsedMs, avgLatencyMs, requestsPerSecond);
-                            }
-                        }
+                synchronized (processedCount) {
+                    processedCount[0]++;
 
-                        if (error != null)
-                            error.printStackTrace();
-                    });
+                    // Log progress every 10,000 messages
+                    if (processedCount[0] % 10000 == 0) {
+                        long currentTime = System.nanoTime();
+                        long elapsedMs = (currentTime - startTime) / 1_000_000;
+                        double avgLatencyMs = (totalLatencyNanos.get() / (double) processedCount[0])
+                                / 1_000_000;
+                        double requestsPerSecond = (processedCount[0] * 1000.0) / elapsedMs;
 
-                    // Tiny sleep to prevent the test from finishing in 2 seconds
-                    // We want to sustain load to look at the dashboard
-                    // if (i % 1000 == 0) Thread.sleep(50);
+                        System.out.printf(
+                                "📈 Progress: %,d/%,d messages | Elapsed: %,d ms | Avg Latency: %.2f ms | Throughput: %.2f req/s%n",
+                                processedCount[0], totalMessages, elapsedMs, avgLatencyMs, requestsPerSecond);
+                    }
                 }
 
-                allDone.await();
-
-                // Calculate final metrics
-                long endTime = System.nanoTime();
-                long totalTimeMs = (endTime - startTime) / 1_000_000;
-                double totalTimeSec = totalTimeMs / 1000.0;
-                double avgProcessingTimeMs = (double) totalTimeMs / totalMessages;
-                double avgRequestsPerSecond = totalMessages / totalTimeSec;
-
-                // Calculate average latency from tracked data
-                double avgLatencyMs = (totalLatencyNanos.get() / (double) totalMessages) / 1_000_000;
-
-                System.out.println("━".repeat(80));
-                System.out.println("✅ Test Finished - FINAL METRICS");
-                System.out.println("━".repeat(80));
-                System.out.printf("📊 Total Messages Processed: %,d%n", totalMessages);
-                System.out.printf("⏱️  Total Processing Time: %,d ms (%.2f seconds)%n", totalTimeMs, totalTimeSec);
-                System.out.printf("⚡ Average Processing Time per Message: %.4f ms%n", avgProcessingTimeMs);
-                System.out.printf("🚀 Average Throughput: %.2f requests/second%n", avgRequestsPerSecond);
-                System.out.printf("📉 Average Write Latency: %.4f ms%n", avgLatencyMs);
-                System.out.printf("📊 Total Writes Completed: %,d%n", (long) writesTotal.get());
-                System.out.println("━".repeat(80));
+                if (error != null)
+                    error.printStackTrace();
+            });
 
-                // Keep server alive so you can still read the final metrics
-                System.out.println("🔄 Keeping metrics server alive for 60 seconds...");
-                Thread.sleep(60000);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+            // Tiny sleep to prevent the test from finishing in 2 seconds
+            // We want to sustain load to look at the dashboard
+            // if (i % 1000 == 0) Thread.sleep(50);
         }
+
+        allDone.await();
+
+        // Calculate final metrics
+        long endTime = System.nanoTime();
+        long totalTimeMs = (endTime - startTime) / 1_000_000;
+        double totalTimeSec = totalTimeMs / 1000.0;
+        double avgProcessingTimeMs = (double) totalTimeMs / totalMessages;
+        double avgRequestsPerSecond = totalMessages / totalTimeSec;
+
+        // Calculate average latency from tracked data
+        double avgLatencyMs = (totalLatencyNanos.get() / (double) totalMessages) / 1_000_000;
+
+        System.out.println("━".repeat(80));
+        System.out.println("✅ Test Finished - FINAL METRICS");
+        System.out.println("━".repeat(80));
+        System.out.printf("📊 Total Messages Processed: %,d%n", totalMessages);
+        System.out.printf("⏱️  Total Processing Time: %,d ms (%.2f seconds)%n", totalTimeMs, totalTimeSec);
+        System.out.printf("⚡ Average Processing Time per Message: %.4f ms%n", avgProcessingTimeMs);
+        System.out.printf("🚀 Average Throughput: %.2f requests/second%n", avgRequestsPerSecond);
+        System.out.printf("📉 Average Write Latency: %.4f ms%n", avgLatencyMs);
+        System.out.printf("📉 p99 / p99.9 Write Latency: %.4f ms / %.4f ms%n",
+                CassandraTailLatency.percentileNanos(latencies, 0.99) / 1_000_000.0,
+                CassandraTailLatency.percentileNanos(latencies, 0.999) / 1_000_000.0);
+        System.out.printf("📊 Total Writes Completed: %,d%n", completed.get());
+        System.out.printf("❌ Failed Writes: %,d%n", failed.get());
+        System.out.println("━".repeat(80));
+
+        return latencies;
+    }
+
+    private static void printTailComparison(long[] baselineLatencies, long[] tailLatencies,
+            CassandraTailLatency.TailStats stats) {
+        System.out.println("🎯 Tail Latency Controls vs Baseline (B, T, T, B rounds after warm-up)");
+        System.out.println("━".repeat(80));
+        System.out.printf("🔀 Speculative Executions Fired: %,d%n", stats.speculativeFires.get());
+        System.out.printf("🔁 Retries (within budget): %,d%n", stats.retries.get());
+        System.out.printf("🛑 Gave Up (budget or attempts exhausted): %,d%n", stats.giveUps.get());
+        for (double percentile : new double[] { 0.99, 0.999 }) {
+            double baselineMs = CassandraTailLatency.percentileNanos(baselineLatencies, percentile) / 1_000_000.0;
+            double tailMs = CassandraTailLatency.percentileNanos(tailLatencies, percentile) / 1_000_000.0;
+            System.out.printf("📉 p%s: %.4f ms -> %.4f ms (%+.1f%%)%n",
+                    percentile == 0.99 ? "99" : "99.9", baselineMs, tailMs, (tailMs - baselineMs) * 100.0 / baselineMs);
+        }
+        System.out.println("━".repeat(80));
+    }
+
+    private static long[] concat(long[] first, long[] second) {
+        long[] all = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, all, first.length, second.length);
+        return all;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,214 @@
+package org.example;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import io.prometheus.client.exporter.HTTPServer;
+import io.vertx.core.Vertx;
+import io.vertx.pgclient.PgConnectOptions;
+import io.vertx.pgclient.PgPool;
+import io.vertx.sqlclient.PoolOptions;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReactivePipelineMetrics {
+
+    // Manual tracking for latency calculation
+    private static final AtomicLong totalBatchLatencyNanos = new AtomicLong(0);
+
+    // --- METRICS DEFINITIONS ---
+    // 1. Throughput: How many rows the pipeline has written
+    static final Counter writesTotal = Counter.build()
+            .name("pipeline_writes_total")
+            .help("Total rows written by the Flow pipeline.")
+            .labelNames("sink")
+            .register();
+
+    // 2. Latency: How long each batch takes (from send to last ack)
+    static final Histogram batchLatency = Histogram.build()
+            .name("pipeline_batch_latency_seconds")
+            .help("Time taken for the database to ack a whole batch.")
+            .labelNames("sink")
+            .buckets(0.001, 0.002, 0.004, 0.010, 0.025, 0.050, 0.100, 0.250, 0.500) // Buckets: 1ms, 2ms, 4ms...
+            .register();
+
+    // 3. Concurrency: How many batches are currently in the network pipe
+    static final Gauge inflightBatches = Gauge.build()
+            .name("pipeline_inflight_batches")
+            .help("Number of batches currently waiting for the database.")
+            .labelNames("sink")
+            .register();
+
+    // Sink capacity: rows in flight = MAX_IN_FLIGHT_BATCHES * BATCH_SIZE (~1024, same as the async tests)
+    private static final int BATCH_SIZE = 100;
+    private static final int MAX_IN_FLIGHT_BATCHES = 10;
+
+    public static void main(String[] args) {
+        // -Dsink=cassandra (default) or -Dsink=postgres
+        String sink = System.getProperty("sink", "cassandra");
+        int totalMessages = "postgres".equals(sink) ? 100000 : 1000000;
+
+        // The publisher generates messages on its own thread, never on a driver/event-loop thread
+        ExecutorService sourceExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "message-source");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Everything that owns non-daemon threads is closed in finally, so a failed run can't
+        // leave the JVM hanging
+        HTTPServer metricsServer = null;
+        Vertx vertx = null;
+        PgPool client = null;
+
+        try {
+            // Start the Metrics Server (Prometheus scrapes this)
+            metricsServer = new HTTPServer(8083); // 8080/8081/8082 are used by the other tests
+            System.out.println("📊 Metrics Server listening on http://localhost:8083/metrics");
+
+
+            if ("postgres".equals(sink)) {
+                vertx = Vertx.vertx();
+
+                PgConnectOptions connectOptions = new PgConnectOptions()
+                        .setPort(5432)
+                        .setHost("localhost")
+                        .setDatabase("whatsapp_db")
+                        .setUser("ajay")
+                        .setPassword("password");
+
+                client = PgPool.pool(vertx, connectOptions, new PoolOptions().setMaxSize(MAX_IN_FLIGHT_BATCHES));
+
+                System.out.println("🔧 Setting up database...");
+                client.query("CREATE TABLE IF NOT EXISTS messages (id uuid PRIMARY KEY, content text, timestamp bigint)")
+                        .execute()
+                        .toCompletionStage()
+                        .toCompletableFuture()
+                        .join();
+
+                runPipeline(sink, totalMessages, sourceExecutor,
+                        new FlowPipeline.PostgresBatchWriter(client, MAX_IN_FLIGHT_BATCHES));
+
+                keepMetricsAlive();
+            } else {
+                try (CqlSession session = CqlSession.builder()
+                        .addContactPoint(new InetSocketAddress("localhost", 9042))
+                        .withLocalDatacenter("datacenter1")
+                        .build()) {
+
+                    session.execute(
+                            "CREATE KEYSPACE IF NOT EXISTS whatsapp WITH replication = {'class': 'SimpleStrategy', 'replication_factor': 1}");
+                    session.execute(
+                            "CREATE TABLE IF NOT EXISTS whatsapp.messages (id uuid PRIMARY KEY, content text, timestamp bigint)");
+
+                    PreparedStatement ps = session
+                            .prepare("INSERT INTO whatsapp.messages (id, content, timestamp) VALUES (?, ?, ?)");
+
+                    runPipeline(sink, totalMessages, sourceExecutor,
+                            new FlowPipeline.CassandraBatchWriter(session, ps, MAX_IN_FLIGHT_BATCHES));
+
+                    keepMetricsAlive();
+                }
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+            if (vertx != null) {
+                vertx.close();
+            }
+            if (metricsServer != null) {
+                metricsServer.close();
+            }
+            sourceExecutor.shutdown();
+        }
+    }
+
+    // Wires Publisher -> BatchingProcessor -> sink and waits for the sink to drain
+    private static void runPipeline(String sink, int totalMessages, ExecutorService sourceExecutor,
+            FlowPipeline.BatchWriter writer) {
+        System.out.printf("🚀 Starting Flow Pipeline Load Test (%s sink, batch %d, %d batches in flight)...%n",
+                sink, BATCH_SIZE, MAX_IN_FLIGHT_BATCHES);
+        System.out.println("━".repeat(80));
+
+        // Track total processing time
+        long startTime = System.nanoTime();
+        trackMetrics(sink, totalMessages, startTime, writer);
+
+        FlowPipeline.BatchingProcessor batcher = new FlowPipeline.BatchingProcessor(BATCH_SIZE);
+        batcher.subscribe(writer);
+        new FlowPipeline.MessagePublisher(totalMessages, sourceExecutor).subscribe(batcher);
+
+        // Only the main thread waits for the end result; the pipeline itself never blocks
+        writer.completion().join();
+
+        // Calculate final metrics
+        long endTime = System.nanoTime();
+        long totalTimeMs = (endTime - startTime) / 1_000_000;
+        double totalTimeSec = totalTimeMs / 1000.0;
+        double avgProcessingTimeMs = (double) totalTimeMs / totalMessages;
+        double avgRequestsPerSecond = totalMessages / totalTimeSec;
+        long batches = (totalMessages + BATCH_SIZE - 1) / BATCH_SIZE;
+        double avgBatchLatencyMs = (totalBatchLatencyNanos.get() / (double) batches) / 1_000_000;
+
+        System.out.println("━".repeat(80));
+        System.out.println("✅ Test Finished - FINAL METRICS");
+        System.out.println("━".repeat(80));
+        System.out.printf("📊 Total Messages Processed: %,d%n", totalMessages);
+        System.out.printf("⏱️  Total Processing Time: %,d ms (%.2f seconds)%n", totalTimeMs, totalTimeSec);
+        System.out.printf("⚡ Average Processing Time per Message: %.4f ms%n", avgProcessingTimeMs);
+        System.out.printf("🚀 Average Throughput: %.2f requests/second%n", avgRequestsPerSecond);
+        System.out.printf("📉 Average Batch Latency (%d rows): %.4f ms%n", BATCH_SIZE, avgBatchLatencyMs);
+        System.out.printf("📊 Total Writes Completed: %,d%n", writer.writesCompleted.get());
+        System.out.printf("❌ Failed Writes: %,d%n", writer.writeErrors.get());
+        System.out.println("━".repeat(80));
+    }
+
+    private static void keepMetricsAlive() throws InterruptedException {
+        // Keep server alive so you can still read the final metrics
+        System.out.println("🔄 Keeping metrics server alive for 60 seconds...");
+        Thread.sleep(60000);
+    }
+
+    // Updates Prometheus metrics and logs progress as the sink finishes batches
+    private static void trackMetrics(String sink, int totalMessages, long startTime, FlowPipeline.BatchWriter writer) {
+        final long[] processedCount = { 0 };
+
+        // Concurrency: read straight from the sink's own in-flight count
+        inflightBatches.setChild(new Gauge.Child() {
+            @Override
+            public double get() {
+                return writer.inflightBatches();
+            }
+        }, sink);
+
+        writer.batchListener = (batch, writtenRows, durationNanos) -> {
+            batchLatency.labels(sink).observe(durationNanos / 1_000_000_000.0);
+            totalBatchLatencyNanos.addAndGet(durationNanos);
+            writesTotal.labels(sink).inc(writtenRows);
+
+            synchronized (processedCount) {
+                long before = processedCount[0];
+                processedCount[0] += batch.size();
+
+                // Log progress every 10,000 messages
+                if (processedCount[0] / 10000 != before / 10000) {
+                    long elapsedMs = Math.max(1, (System.nanoTime() - startTime) / 1_000_000);
+                    double requestsPerSecond = (processedCount[0] * 1000.0) / elapsedMs;
+
+                    System.out.printf(
+                            "📈 Progress: %,d/%,d messages | Elapsed: %,d ms | In-flight Batches: %d | Throughput: %.2f req/s%n",
+                            processedCount[0], totalMessages, elapsedMs, writer.inflightBatches(),
+                            requestsPerSecond);
+                }
+            }
+        };
+    }
+}
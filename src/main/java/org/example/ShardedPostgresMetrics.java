@@ -0,0 +1,373 @@
+package org.example;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import io.prometheus.client.exporter.HTTPServer;
+import io.vertx.core.Vertx;
+import io.vertx.pgclient.PgConnectOptions;
+import io.vertx.pgclient.PgPool;
+import io.vertx.sqlclient.PoolOptions;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.Tuple;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ShardedPostgresMetrics {
+
+    // Manual tracking for latency calculation
+    private static final AtomicLong totalLatencyNanos = new AtomicLong(0);
+    private static final AtomicLong totalQueueWaitNanos = new AtomicLong(0);
+
+    // --- METRICS DEFINITIONS ---
+    // Same metrics as OptimizedPostgresMetrics, but labelled per shard so Grafana can
+    // show whether the hash spreads the load evenly.
+    // 1. Throughput: How many writes each shard is doing
+    static final Counter writesTotal = Counter.build()
+            .name("postgres_sharded_writes_total")
+            .help("Total writes to each PostgreSQL shard.")
+            .labelNames("shard")
+            .register();
+
+    // 2. Latency: How long each async write takes on its shard (from send to callback)
+    static final Histogram writeLatency = Histogram.build()
+            .name("postgres_sharded_write_latency_seconds")
+            .help("Time taken for a PostgreSQL shard to ack the write.")
+            .labelNames("shard")
+            .buckets(0.001, 0.002, 0.004, 0.010, 0.025, 0.050, 0.100) // Buckets: 1ms, 2ms, 4ms, 10ms...
+            .register();
+
+    // 2b. Failures: Writes a shard rejected (kept out of writesTotal so the split only counts acks)
+    static final Counter writeFailuresTotal = Counter.build()
+            .name("postgres_sharded_write_failures_total")
+            .help("Total failed writes to each PostgreSQL shard.")
+            .labelNames("shard")
+            .register();
+
+    // 2c. Queue wait: How long a write sat in its shard's queue before being sent
+    static final Histogram queueWait = Histogram.build()
+            .name("postgres_sharded_queue_wait_seconds")
+            .help("Time a write waited for a free in-flight slot on its shard.")
+            .labelNames("shard")
+            .buckets(0.001, 0.002, 0.004, 0.010, 0.025, 0.050, 0.100, 0.250, 0.500, 1.0)
+            .register();
+
+    // 3. Concurrency: How many requests are currently in the network pipe of each shard
+    static final Gauge inflightRequests = Gauge.build()
+            .name("postgres_sharded_inflight_requests")
+            .help("Number of async requests currently waiting for a response, per shard.")
+            .labelNames("shard")
+            .register();
+
+    // In-flight limit is per shard: adding a shard adds capacity instead of splitting it.
+    private static final int MAX_IN_FLIGHT_PER_SHARD = 1024;
+    private static final int POOL_SIZE_PER_SHARD = 50;
+
+    // Producer-side bound on writes that are queued or in flight, across all shards. Twice the
+    // total in-flight capacity: a busy shard can queue a backlog without stalling the others,
+    // but once that slack is used up the producer waits and memory stays bounded.
+    private static final int OUTSTANDING_PER_SHARD = 2 * MAX_IN_FLIGHT_PER_SHARD;
+
+    // Comma separated host:port/database list. Override with -Dshards=... to benchmark
+    // 1, 2, 3... shards. Defaults match the postgres services in docker-compose.yaml.
+    private static final String DEFAULT_SHARDS =
+            "localhost:5432/whatsapp_db,localhost:5433/whatsapp_db,localhost:5434/whatsapp_db";
+
+    private static final String INSERT_QUERY = "INSERT INTO messages (id, content, timestamp) VALUES ($1, $2, $3)";
+
+    // Called once per finished write (error is null on success)
+    interface WriteCallback {
+        void onWrite(Shard shard, long queueWaitNanos, long durationNanos, Throwable error);
+    }
+
+    // A write waiting for a free in-flight slot on its shard
+    static class PendingWrite {
+        final Tuple params;
+        final long submittedAt = System.nanoTime();
+
+        PendingWrite(Tuple params) {
+            this.params = params;
+        }
+    }
+
+    // One Postgres endpoint: its own pool, in-flight limit and metric label.
+    // The producer never blocks on a single shard: writes without a free permit wait in the
+    // shard's parked queue, and each ack sends the next parked write. A saturated shard
+    // therefore delays its own writes first; the producer only waits once the global
+    // outstanding limit in main() is reached.
+    static class Shard {
+        final String name;
+        final PgPool client;
+        final Semaphore inflightLimiter = new Semaphore(MAX_IN_FLIGHT_PER_SHARD);
+        final Queue<PendingWrite> parked = new ConcurrentLinkedQueue<>();
+        final AtomicLong writes = new AtomicLong(0);
+        final AtomicLong failures = new AtomicLong(0);
+
+        Shard(String name, PgPool client) {
+            this.name = name;
+            this.client = client;
+        }
+
+        void submit(Tuple params, WriteCallback callback) {
+            parked.offer(new PendingWrite(params));
+            drainParked(callback);
+        }
+
+        // Send parked writes while permits are free. Whoever parks or releases last drains,
+        // so a write can't be stranded in the queue.
+        private void drainParked(WriteCallback callback) {
+            while (!parked.isEmpty() && inflightLimiter.tryAcquire()) {
+                PendingWrite pending = parked.poll();
+                if (pending == null) {
+                    inflightLimiter.release();
+                    break;
+                }
+                send(pending, callback);
+            }
+        }
+
+        private void send(PendingWrite pending, WriteCallback callback) {
+            // Increment Gauge: We are sending a request out
+            inflightRequests.labels(name).inc();
+
+            long requestStartTime = System.nanoTime();
+            long queueWaitNanos = requestStartTime - pending.submittedAt;
+
+            client.preparedQuery(INSERT_QUERY)
+                    .execute(pending.params)
+                    .onComplete(ar -> {
+                        long durationNanos = System.nanoTime() - requestStartTime;
+                        inflightRequests.labels(name).dec();
+                        inflightLimiter.release();
+
+                        callback.onWrite(this, queueWaitNanos, durationNanos, ar.failed() ? ar.cause() : null);
+                        drainParked(callback);
+                    });
+        }
+    }
+
+    // Client-side router: hashes a key (message id today, conversation id later) onto a shard.
+    // Every query for the same key must go through here so it lands on the same shard.
+    static class ShardRouter {
+        private final List<Shard> shards;
+
+        ShardRouter(List<Shard> shards) {
+            this.shards = shards;
+        }
+
+        Shard shardFor(Object key) {
+            // Spread the bits of hashCode() before the modulo (murmur3 finalizer), so keys
+            // with weak low bits don't pile onto one shard.
+            int h = key.hashCode();
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return shards.get(Math.floorMod(h, shards.size()));
+        }
+
+        List<Shard> all() {
+            return shards;
+        }
+    }
+
+    static PgPool connect(Vertx vertx, String endpoint) {
+        // Format: host:port/database
+        String[] hostAndDb = endpoint.trim().split("/", 2);
+        String[] hostAndPort = hostAndDb[0].split(":", 2);
+
+        PgConnectOptions connectOptions = new PgConnectOptions()
+                .setPort(hostAndPort.length > 1 ? Integer.parseInt(hostAndPort[1]) : 5432)
+                .setHost(hostAndPort[0])
+                .setDatabase(hostAndDb.length > 1 ? hostAndDb[1] : "whatsapp_db")
+                .setUser("ajay")
+                .setPassword("password");
+
+        PoolOptions poolOptions = new PoolOptions()
+                .setMaxSize(POOL_SIZE_PER_SHARD);
+
+        return PgPool.pool(vertx, connectOptions, poolOptions);
+    }
+
+    public static void main(String[] args) {
+        try {
+            // Start the Metrics Server (Prometheus scrapes this)
+            HTTPServer metricsServer = new HTTPServer(8082); // 8080 = Cassandra, 8081 = single Postgres
+            System.out.println("📊 Metrics Server listening on http://localhost:8082/metrics");
+
+            Vertx vertx = Vertx.vertx();
+
+            List<Shard> shards = new ArrayList<>();
+            String[] endpoints = System.getProperty("shards", DEFAULT_SHARDS).split(",");
+            for (int i = 0; i < endpoints.length; i++) {
+                shards.add(new Shard("shard-" + i, connect(vertx, endpoints[i])));
+                System.out.println("🔌 shard-" + i + " -> " + endpoints[i].trim());
+            }
+            ShardRouter router = new ShardRouter(shards);
+
+            // Create table on every shard (synchronous, just for setup)
+            System.out.println("🔧 Setting up " + shards.size() + " shard(s)...");
+            CountDownLatch setupLatch = new CountDownLatch(shards.size());
+
+            for (Shard shard : shards) {
+                shard.client.query("CREATE TABLE IF NOT EXISTS messages (id uuid PRIMARY KEY, content text, timestamp bigint)")
+                        .execute()
+                        .onComplete(ar -> {
+                            if (ar.succeeded()) {
+                                System.out.println("✅ " + shard.name + " setup complete");
+                            } else {
+                                System.err.println("❌ " + shard.name + " failed to create table: " + ar.cause().getMessage());
+                            }
+                            setupLatch.countDown();
+                        });
+            }
+
+            setupLatch.await();
+
+            int totalMessages = 100000;
+            CountDownLatch allDone = new CountDownLatch(totalMessages);
+            Semaphore outstandingLimiter = new Semaphore(shards.size() * OUTSTANDING_PER_SHARD);
+
+            // Keep a few ids around to check that reads find them through the router
+            int sampleSize = 1000;
+            int sampleStep = totalMessages / sampleSize;
+            UUID[] sampleIds = new UUID[sampleSize];
+
+            System.out.println("🚀 Starting Sharded Async Load Test...");
+            System.out.println("━".repeat(80));
+
+            // Track total processing time
+            long startTime = System.nanoTime();
+            final int[] processedCount = { 0 };
+
+            WriteCallback onWrite = (shard, queueWaitNanos, durationNanos, error) -> {
+                double durationSeconds = durationNanos / 1_000_000_000.0;
+
+                // Update metrics
+                writeLatency.labels(shard.name).observe(durationSeconds);
+                queueWait.labels(shard.name).observe(queueWaitNanos / 1_000_000_000.0);
+                totalLatencyNanos.addAndGet(durationNanos);
+                totalQueueWaitNanos.addAndGet(queueWaitNanos);
+                if (error == null) {
+                    writesTotal.labels(shard.name).inc();
+                    shard.writes.incrementAndGet();
+                } else {
+                    writeFailuresTotal.labels(shard.name).inc();
+                    shard.failures.incrementAndGet();
+                    System.err.println("❌ Write failed on " + shard.name + ": " + error.getMessage());
+                }
+
+                outstandingLimiter.release();
+                allDone.countDown();
+
+                synchronized (processedCount) {
+                    processedCount[0]++;
+
+                    // Log progress every 10,000 messages
+                    if (processedCount[0] % 10000 == 0) {
+                        long currentTime = System.nanoTime();
+                        long elapsedMs = (currentTime - startTime) / 1_000_000;
+                        double avgLatencyMs = (totalLatencyNanos.get() / (double) processedCount[0])
+                                / 1_000_000;
+                        double requestsPerSecond = (processedCount[0] * 1000.0) / elapsedMs;
+
+                        System.out.printf(
+                                "📈 Progress: %,d/%,d messages | Elapsed: %,d ms | Avg Latency: %.2f ms | Throughput: %.2f req/s%n",
+                                processedCount[0], totalMessages, elapsedMs, avgLatencyMs,
+                                requestsPerSecond);
+                    }
+                }
+            };
+
+            for (int i = 0; i < totalMessages; i++) {
+                UUID messageId = UUID.randomUUID();
+                if (i % sampleStep == 0) {
+                    sampleIds[i / sampleStep] = messageId;
+                }
+
+                // Global backpressure: only waits when every shard's slack is used up
+                outstandingLimiter.acquire();
+
+                // Route and hand off; the shard sends it when it has a free in-flight slot
+                router.shardFor(messageId).submit(Tuple.of(messageId, "Payload", System.currentTimeMillis()), onWrite);
+            }
+
+            allDone.await();
+
+            // Calculate final metrics
+            long endTime = System.nanoTime();
+            long totalTimeMs = (endTime - startTime) / 1_000_000;
+            double totalTimeSec = totalTimeMs / 1000.0;
+            double avgProcessingTimeMs = (double) totalTimeMs / totalMessages;
+            double avgRequestsPerSecond = totalMessages / totalTimeSec;
+
+            // Calculate average latency from tracked data
+            double avgLatencyMs = (totalLatencyNanos.get() / (double) totalMessages) / 1_000_000;
+            double avgQueueWaitMs = (totalQueueWaitNanos.get() / (double) totalMessages) / 1_000_000;
+
+            // Point reads: each sampled id must be found on the shard the router picks
+            AtomicInteger found = new AtomicInteger(0);
+            AtomicInteger readErrors = new AtomicInteger(0);
+            CountDownLatch readsDone = new CountDownLatch(sampleSize);
+            for (UUID id : sampleIds) {
+                router.shardFor(id).client.preparedQuery("SELECT id FROM messages WHERE id = $1")
+                        .execute(Tuple.of(id))
+                        .onComplete(ar -> {
+                            if (ar.succeeded()) {
+                                RowSet<Row> rows = ar.result();
+                                if (rows.size() == 1) {
+                                    found.incrementAndGet();
+                                }
+                            } else {
+                                readErrors.incrementAndGet();
+                            }
+                            readsDone.countDown();
+                        });
+            }
+            boolean readsFinished = readsDone.await(30, TimeUnit.SECONDS);
+
+            System.out.println("━".repeat(80));
+            System.out.println("✅ Test Finished - FINAL METRICS");
+            System.out.println("━".repeat(80));
+            System.out.printf("🧩 Shards: %d%n", shards.size());
+            System.out.printf("📊 Total Messages Processed: %,d%n", totalMessages);
+            System.out.printf("⏱️  Total Processing Time: %,d ms (%.2f seconds)%n", totalTimeMs, totalTimeSec);
+            System.out.printf("⚡ Average Processing Time per Message: %.4f ms%n", avgProcessingTimeMs);
+            System.out.printf("🚀 Average Throughput: %.2f requests/second%n", avgRequestsPerSecond);
+            System.out.printf("📉 Average Write Latency: %.4f ms (send to ack)%n", avgLatencyMs);
+            System.out.printf("⏳ Average Queue Wait: %.4f ms (submit to send)%n", avgQueueWaitMs);
+            for (Shard shard : router.all()) {
+                long routed = shard.writes.get() + shard.failures.get();
+                System.out.printf("   └─ %s: %,d routed (%.1f%%), %,d written, %,d failed%n",
+                        shard.name, routed, routed * 100.0 / totalMessages, shard.writes.get(), shard.failures.get());
+            }
+            System.out.printf("🔎 Routed Reads Found: %,d/%,d (read errors: %,d)%n", found.get(), sampleSize, readErrors.get());
+            if (!readsFinished) {
+                System.out.printf("⚠️  Routed reads timed out: %,d still pending after 30 seconds%n", readsDone.getCount());
+            }
+            System.out.println("━".repeat(80));
+
+            // Graceful shutdown
+            System.out.println("🔄 Keeping metrics server alive for 60 seconds...");
+            Thread.sleep(60000);
+
+            for (Shard shard : shards) {
+                shard.client.close();
+            }
+            vertx.close();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}